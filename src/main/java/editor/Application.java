@@ -62,7 +62,9 @@ public class Application {
                     case "-client":
                         host = args[1];
                         port = Integer.parseInt(args[2]);
-                        ClientApplication clientApp = new ClientApplication(host, port);
+                        String dictionaryName = args.length>3 ? args[3] : null;
+                        ClientApplication clientApp =
+                                new ClientApplication(host, port, dictionaryName);
                         clientApp.run();
                         break;
                 }
@@ -1,9 +1,14 @@
 package editor;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Vsevolod Kosulnikov
@@ -20,16 +25,45 @@ public class Dictionary {
      */
     private static final int INDICES_DEPTH = 4;
     private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
     private int indicesDepth = 0;
 
+    /**
+     * Approximate heap sizes of structures, used for memory estimation
+     */
+    private static final int OBJECT_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int WORD_SIZE = 2 * OBJECT_HEADER_SIZE + 4 * REFERENCE_SIZE;
+
     private final Word[] words;
     private Index baseIndex;
+    private long estimatedSize;
+    /**
+     * Approximate heap size of encoded selections cached by indices
+     */
+    private final AtomicLong cachedSelectionsSize = new AtomicLong();
+    /**
+     * Optional index for search by word fragments, see {@link #buildSubstringIndex()}
+     */
+    private volatile SubstringIndex substringIndex;
 
     public static Dictionary initDictionary(File dictionaryFile) throws IOException {
         try (BufferedReader reader = new BufferedReader(new FileReader(dictionaryFile))) {
             return initDictionary(reader);
         }
     }
+
+    /**
+     * @return true if the word consists of chars which dictionary indices are built for
+     */
+    public static boolean isInAlphabet(String word) {
+        for (int i = 0; i < word.length(); ++i) {
+            if (ALPHABET.indexOf(word.charAt(i)) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
     public static Dictionary initDictionary(BufferedReader reader) throws IOException {
         // initializing dictionary
         String currentLine = reader.readLine();
@@ -61,6 +95,33 @@ public class Dictionary {
         return dictionary;
     }
 
+    /**
+     * Creates new dictionary with frequencies of this one increased by selection counts.
+     * Words which are absent in this dictionary are added with their selection count as frequency.
+     * This dictionary stays untouched, so it may be used by other threads meanwhile
+     */
+    public Dictionary withSelections(Map<String, Integer> selections) {
+        Map<String, Integer> frequencies = new HashMap<>(addingIndex + selections.size());
+        for (int i = 0; i < addingIndex; ++i) {
+            frequencies.put(words[i].word, words[i].frequency);
+        }
+        for (Map.Entry<String, Integer> selection : selections.entrySet()) {
+            String word = selection.getKey().toLowerCase();
+            if (word.isEmpty() || selection.getValue() < 1) {
+                continue;
+            }
+            Integer frequency = frequencies.get(word);
+            long newFrequency = (long) selection.getValue() + (frequency == null ? 0 : frequency);
+            frequencies.put(word, (int) Math.min(newFrequency, Integer.MAX_VALUE));
+        }
+        Dictionary dictionary = new Dictionary(frequencies.size());
+        for (Map.Entry<String, Integer> wordAndFrequency : frequencies.entrySet()) {
+            dictionary.addWord(wordAndFrequency.getKey(), wordAndFrequency.getValue());
+        }
+        dictionary.prepareForWork();
+        return dictionary;
+    }
+
     public Dictionary(int initialLength) {
         if (initialLength<=0) {
             throw new IllegalArgumentException("Cannot create dictionary with non-positive length");
@@ -101,17 +162,116 @@ public class Dictionary {
         baseIndex = new Index(0, words.length, words, "", 0);
         baseIndex.split();
         baseIndex.prepare();
+
+        estimatedSize = OBJECT_HEADER_SIZE + (long) words.length * REFERENCE_SIZE
+                + baseIndex.estimateSize();
+        for (Word word : words) {
+            estimatedSize += WORD_SIZE + OBJECT_HEADER_SIZE + word.word.length();
+        }
+    }
+
+    /**
+     * @return approximate heap size of the dictionary in bytes, including encoded selections
+     * cached so far
+     */
+    public long getEstimatedSize() {
+        long size = estimatedSize + cachedSelectionsSize.get();
+        SubstringIndex index = substringIndex;
+        return index == null ? size : size + index.getEstimatedSize();
+    }
+
+    /**
+     * Builds index required by {@link #getSubstringSelection(String)}. It takes about 6 bytes
+     * per character of dictionary words
+     */
+    public void buildSubstringIndex() {
+        if (substringIndex==null) {
+            substringIndex = new SubstringIndex(words);
+        }
+    }
+
+    public boolean hasSubstringIndex() {
+        return substringIndex!=null;
+    }
+
+    /**
+     * Same as {@link #getSelection(String)}, but finds words which contain the fragment
+     * at any position, not only at the beginning
+     *
+     * @throws IllegalStateException if substring index is not built
+     */
+    public List<String> getSubstringSelection(String fragment) {
+        if (fragment==null) {
+            throw new NullPointerException("Fragment is null!");
+        }
+        SubstringIndex index = substringIndex;
+        if (index==null) {
+            throw new IllegalStateException("Substring index is not built");
+        }
+        List<String> result;
+        if (fragment.isEmpty()) {
+            result = new ArrayList<>();
+        } else {
+            result = index.getSelection(fragment, MAX_SELECTION_LENGTH);
+        }
+        if (result.size()==0) {
+            result.add("");
+        }
+        return result;
+    }
+
+    /**
+     * Builds encoded selections (see {@link #getEncodedSelection(String)}) for all prefixes
+     * not longer than depth, so first requests for them are served from the cache
+     */
+    public void warmUp(int depth) {
+        baseIndex.warmUp(Math.min(depth, indicesDepth));
     }
 
     public List<String> getSelection(String prefix) {
         if (prefix==null) {
             throw new NullPointerException("Prefix is null!");
         }
-        List<String> result = new ArrayList<>();
         if (prefix.isEmpty()) {
+            List<String> result = new ArrayList<>();
             result.add("");
             return result;
         }
+        return findNearestIndex(prefix).getSelection(prefix);
+    }
+
+    /**
+     * Returns the same selection as {@link #getSelection(String)}, encoded in UTF-8 as
+     * number of words followed by the words, each on its own line ('\n').
+     * If prefix has an index of its own, encoded selection is cached in it, so every call
+     * for such prefix returns the same bytes without any encoding work
+     *
+     * @return read-only buffer, which may be shared with other callers
+     */
+    public ByteBuffer getEncodedSelection(String prefix) {
+        if (prefix==null) {
+            throw new NullPointerException("Prefix is null!");
+        }
+        if (prefix.isEmpty()) {
+            return encodeSelection(getSelection(prefix));
+        }
+        Index nearestIndex = findNearestIndex(prefix);
+        if (!nearestIndex.prefix.equals(prefix)) {
+            return encodeSelection(nearestIndex.getSelection(prefix));
+        }
+        return nearestIndex.getEncodedSelection().duplicate();
+    }
+
+    public static ByteBuffer encodeSelection(List<String> selection) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(selection.size()).append('\n');
+        for (String word : selection) {
+            builder.append(word).append('\n');
+        }
+        return ByteBuffer.wrap(builder.toString().getBytes(CHARSET)).asReadOnlyBuffer();
+    }
+
+    private Index findNearestIndex(String prefix) {
         String indexedPrefix;
         // even if prefix longer than indicesDepth there are no way to search by whole prefix;
         // it is necessary to truncate the prefix to find appropriate index
@@ -126,21 +286,7 @@ public class Dictionary {
         for (int charPosition = 0; charPosition<indexedPrefix.length(); ++charPosition) {
             nearestIndex = nearestIndex.getNestedIndex(indexedPrefix.charAt(charPosition));
         }
-
-        // ...And finding appropriate words from sortedList
-        // (list is sorted by frequency, see class Index)
-        for (Word indexedWord : nearestIndex.sortedList) {
-            if (indexedWord.word.startsWith(prefix)) {
-                result.add(indexedWord.word);
-            }
-            if (result.size()==MAX_SELECTION_LENGTH) {
-                break;
-            }
-        }
-        if (result.size()==0) {
-            result.add("");
-        }
-        return result;
+        return nearestIndex;
     }
 
     private class Index {
@@ -160,6 +306,10 @@ public class Dictionary {
          * Words for this index sorted by frequency (sorting is performed in prepare() method)
          */
         private final Word[] sortedList;
+        /**
+         * Cached result of getEncodedSelection() for prefix of this index, built on first request
+         */
+        private volatile ByteBuffer encodedSelection;
 
         private Index(int start, int end, Word[] sourceArray, String prefix, int depthLevel) {
             this.prefix = prefix;
@@ -222,5 +372,59 @@ public class Dictionary {
         private Index getNestedIndex(char character) {
             return nestedIndices[ALPHABET.indexOf(character)];
         }
+
+        private ByteBuffer getEncodedSelection() {
+            // concurrent callers may encode the selection twice, but the result is the same
+            ByteBuffer selection = encodedSelection;
+            if (selection==null) {
+                selection = encodeSelection(getSelection(prefix));
+                encodedSelection = selection;
+                // buffer object, its array and the bytes
+                cachedSelectionsSize.addAndGet(3 * OBJECT_HEADER_SIZE + selection.capacity());
+            }
+            return selection;
+        }
+
+        private void warmUp(int depth) {
+            if (depthLevel>0) {
+                getEncodedSelection();
+            }
+            if (nestedIndices==null || depthLevel>=depth) {
+                return;
+            }
+            for (Index nestedIndex : nestedIndices) {
+                nestedIndex.warmUp(depth);
+            }
+        }
+
+        private long estimateSize() {
+            long size = 2 * OBJECT_HEADER_SIZE + (long) sortedList.length * REFERENCE_SIZE;
+            if (nestedIndices==null) {
+                return size;
+            }
+            size += OBJECT_HEADER_SIZE + nestedIndices.length * REFERENCE_SIZE;
+            for (Index nestedIndex : nestedIndices) {
+                size += nestedIndex.estimateSize();
+            }
+            return size;
+        }
+
+        private List<String> getSelection(String prefix) {
+            List<String> result = new ArrayList<>();
+            // Finding appropriate words from sortedList
+            // (list is sorted by frequency, see prepare())
+            for (Word indexedWord : sortedList) {
+                if (indexedWord.word.startsWith(prefix)) {
+                    result.add(indexedWord.word);
+                }
+                if (result.size()==MAX_SELECTION_LENGTH) {
+                    break;
+                }
+            }
+            if (result.size()==0) {
+                result.add("");
+            }
+            return result;
+        }
     }
 }
@@ -0,0 +1,343 @@
+package editor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Index for searching words which contain specified fragment at any position.
+ * <p>
+ * Words are concatenated in order of frequency (most frequent first), each one terminated
+ * by SEPARATOR. Suffix array contains positions of all word suffixes, sorted by suffix text
+ * up to the separator, so suffixes started with fragment form a continuous range of it.
+ * Because words are placed by frequency, the smaller the position, the more frequent the word,
+ * so the most frequent words of the range are the ones with minimal positions. They are
+ * found by range minimum queries over the suffix array (see {@link #minimumIndex(int, int)}).
+ * <p>
+ * Memory: 2 bytes of text and 4 bytes of suffix array per character, plus ~7% for range minima
+ * and 4 bytes per word. Query: binary search by fragment and a few range minimum queries per
+ * found word, independent of number of matching words
+ *
+ * @author Vsevolod Kosulnikov
+ */
+class SubstringIndex {
+    private static final char SEPARATOR = '\0';
+    /**
+     * Block size of range minima levels
+     */
+    private static final int BLOCK = 16;
+    /**
+     * Subarrays shorter than this are sorted by insertion sort
+     */
+    private static final int INSERTION_SORT_THRESHOLD = 16;
+
+    private final char[] text;
+    /**
+     * Words sorted by frequency, wordStarts[i] is position of words[i] in text
+     */
+    private final String[] words;
+    private final int[] wordStarts;
+    /**
+     * Suffix array; minima[0] is the same array, minima[k][j] is minimum of
+     * minima[k-1][j*BLOCK .. (j+1)*BLOCK-1]
+     */
+    private final int[] suffixes;
+    private final int[][] minima;
+
+    SubstringIndex(Word[] dictionaryWords) {
+        Word[] sortedWords = Arrays.copyOf(dictionaryWords, dictionaryWords.length);
+        Arrays.sort(sortedWords, Word.getFrequencyComparator());
+        int textLength = 0;
+        for (Word word : sortedWords) {
+            textLength += word.word.length() + 1;
+        }
+        text = new char[textLength];
+        words = new String[sortedWords.length];
+        wordStarts = new int[sortedWords.length];
+        suffixes = new int[textLength - sortedWords.length];
+        int position = 0;
+        int suffixCount = 0;
+        for (int i = 0; i < sortedWords.length; ++i) {
+            String word = sortedWords[i].word;
+            words[i] = word;
+            wordStarts[i] = position;
+            word.getChars(0, word.length(), text, position);
+            for (int offset = 0; offset < word.length(); ++offset) {
+                suffixes[suffixCount++] = position + offset;
+            }
+            position += word.length();
+            text[position++] = SEPARATOR;
+        }
+        sort(suffixes, 0, suffixes.length, 0, new Random(textLength));
+        minima = buildMinima(suffixes);
+    }
+
+    /**
+     * @return at most maxCount most frequent words containing the fragment,
+     * in order of frequency decrease
+     */
+    List<String> getSelection(String fragment, int maxCount) {
+        List<String> result = new ArrayList<>();
+        int from = lowerBound(fragment);
+        int to = upperBound(fragment, from);
+        if (from >= to) {
+            return result;
+        }
+        PriorityQueue<Range> ranges = new PriorityQueue<>();
+        ranges.add(newRange(from, to));
+        int lastWord = -1;
+        while (!ranges.isEmpty() && result.size() < maxCount) {
+            Range range = ranges.poll();
+            int word = findWord(range.minimum);
+            // ranges are polled in order of positions, and positions of one word are adjacent,
+            // so repeated occurrences of fragment in the same word follow each other
+            if (word != lastWord) {
+                result.add(words[word]);
+                lastWord = word;
+            }
+            if (range.from < range.minimumIndex) {
+                ranges.add(newRange(range.from, range.minimumIndex));
+            }
+            if (range.minimumIndex + 1 < range.to) {
+                ranges.add(newRange(range.minimumIndex + 1, range.to));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return approximate heap size of the index in bytes
+     */
+    long getEstimatedSize() {
+        long size = 2L * text.length + 4L * wordStarts.length + 4L * words.length;
+        for (int[] level : minima) {
+            size += 4L * level.length;
+        }
+        return size;
+    }
+
+    private Range newRange(int from, int to) {
+        int minimumIndex = minimumIndex(from, to);
+        return new Range(from, to, minimumIndex, suffixes[minimumIndex]);
+    }
+
+    private int findWord(int position) {
+        int word = Arrays.binarySearch(wordStarts, position);
+        return word >= 0 ? word : -word - 2;
+    }
+
+    /**
+     * @return index of the first suffix not less than fragment
+     */
+    private int lowerBound(String fragment) {
+        int low = 0;
+        int high = suffixes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(suffixes[middle], fragment) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * @return index of the first suffix after from which does not start with fragment
+     */
+    private int upperBound(String fragment, int from) {
+        int low = from;
+        int high = suffixes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(suffixes[middle], fragment) == 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Compares suffix with fragment; suffix started with fragment is equal to it
+     */
+    private int compare(int position, String fragment) {
+        for (int i = 0; i < fragment.length(); ++i) {
+            char suffixChar = text[position + i];
+            char fragmentChar = fragment.charAt(i);
+            if (suffixChar != fragmentChar) {
+                return suffixChar < fragmentChar ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return index in suffix array of minimal suffix position in range [from, to)
+     */
+    private int minimumIndex(int from, int to) {
+        int level = 0;
+        int bestIndex = -1;
+        int bestLevel = 0;
+        int bestValue = Integer.MAX_VALUE;
+        // ascending while range contains full blocks of upper level...
+        while (true) {
+            int[] values = minima[level];
+            int fullFrom = (from + BLOCK - 1) / BLOCK;
+            int fullTo = to / BLOCK;
+            if (level + 1 == minima.length || fullFrom >= fullTo) {
+                for (int i = from; i < to; ++i) {
+                    if (values[i] < bestValue) {
+                        bestValue = values[i];
+                        bestIndex = i;
+                        bestLevel = level;
+                    }
+                }
+                break;
+            }
+            // ...and checking partial blocks at the edges on the way
+            for (int i = from; i < fullFrom * BLOCK; ++i) {
+                if (values[i] < bestValue) {
+                    bestValue = values[i];
+                    bestIndex = i;
+                    bestLevel = level;
+                }
+            }
+            for (int i = fullTo * BLOCK; i < to; ++i) {
+                if (values[i] < bestValue) {
+                    bestValue = values[i];
+                    bestIndex = i;
+                    bestLevel = level;
+                }
+            }
+            from = fullFrom;
+            to = fullTo;
+            ++level;
+        }
+        // descending to the suffix array element with found value
+        for (level = bestLevel; level > 0; --level) {
+            int[] values = minima[level - 1];
+            int child = bestIndex * BLOCK;
+            while (values[child] != bestValue) {
+                ++child;
+            }
+            bestIndex = child;
+        }
+        return bestIndex;
+    }
+
+    private static int[][] buildMinima(int[] suffixes) {
+        List<int[]> levels = new ArrayList<>();
+        int[] level = suffixes;
+        levels.add(level);
+        while (level.length > BLOCK) {
+            int[] upperLevel = new int[(level.length + BLOCK - 1) / BLOCK];
+            for (int block = 0; block < upperLevel.length; ++block) {
+                int minimum = Integer.MAX_VALUE;
+                int end = Math.min(level.length, (block + 1) * BLOCK);
+                for (int i = block * BLOCK; i < end; ++i) {
+                    minimum = Math.min(minimum, level[i]);
+                }
+                upperLevel[block] = minimum;
+            }
+            levels.add(upperLevel);
+            level = upperLevel;
+        }
+        return levels.toArray(new int[levels.size()][]);
+    }
+
+    /**
+     * Three-way radix quicksort of suffixes [from, to) which are equal in first depth chars.
+     * Suffixes are compared up to the separator only
+     */
+    private void sort(int[] array, int from, int to, int depth, Random random) {
+        while (to - from > INSERTION_SORT_THRESHOLD) {
+            int pivot = charAt(array[from + random.nextInt(to - from)], depth);
+            int less = from;
+            int greater = to - 1;
+            int i = from;
+            while (i <= greater) {
+                int current = charAt(array[i], depth);
+                if (current < pivot) {
+                    swap(array, less++, i++);
+                } else if (current > pivot) {
+                    swap(array, i, greater--);
+                } else {
+                    ++i;
+                }
+            }
+            sort(array, from, less, depth, random);
+            sort(array, greater + 1, to, depth, random);
+            if (pivot == SEPARATOR) {
+                // suffixes of equal range are equal completely
+                return;
+            }
+            from = less;
+            to = greater + 1;
+            ++depth;
+        }
+        insertionSort(array, from, to, depth);
+    }
+
+    private void insertionSort(int[] array, int from, int to, int depth) {
+        for (int i = from + 1; i < to; ++i) {
+            int current = array[i];
+            int j = i;
+            while (j > from && compareSuffixes(array[j - 1], current, depth) > 0) {
+                array[j] = array[j - 1];
+                --j;
+            }
+            array[j] = current;
+        }
+    }
+
+    private int compareSuffixes(int first, int second, int depth) {
+        while (true) {
+            char firstChar = text[first + depth];
+            char secondChar = text[second + depth];
+            if (firstChar != secondChar) {
+                return firstChar < secondChar ? -1 : 1;
+            }
+            if (firstChar == SEPARATOR) {
+                return 0;
+            }
+            ++depth;
+        }
+    }
+
+    private int charAt(int position, int depth) {
+        return text[position + depth];
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int temporary = array[i];
+        array[i] = array[j];
+        array[j] = temporary;
+    }
+
+    private static class Range implements Comparable<Range> {
+        private final int from;
+        private final int to;
+        private final int minimumIndex;
+        /**
+         * Text position of the range minimum, i.e. the most frequent word of the range
+         */
+        private final int minimum;
+
+        private Range(int from, int to, int minimumIndex, int minimum) {
+            this.from = from;
+            this.to = to;
+            this.minimumIndex = minimumIndex;
+            this.minimum = minimum;
+        }
+
+        @Override
+        public int compareTo(Range o) {
+            return Integer.compare(minimum, o.minimum);
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package editor.learning;
+
+import editor.Dictionary;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Dictionary which learns frequencies from words selected by users.
+ * <p>
+ * Selections are appended to {@link SelectionLog}; compaction periodically folds closed log
+ * segments into new snapshot '&lt;dictionary file&gt;.snapshot.&lt;N&gt;', which contains selection
+ * counts of all segments with numbers up to N. Source dictionary file is never modified.
+ * On start, counts of the latest snapshot and of remaining segments are added to the source
+ * dictionary, so changes of the source are not lost.
+ * <p>
+ * Queries are served by immutable {@link Dictionary}, which is replaced after each compaction,
+ * so selections do not slow down queries.
+ * <p>
+ * If directory of the dictionary is not writable, learned selections are still applied,
+ * but new ones are not accepted, see {@link #isLearning()}
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class LearningDictionary implements Closeable {
+    private static final String SNAPSHOT_SUFFIX = ".snapshot.";
+    private static final String TEMPORARY_SUFFIX = ".tmp";
+    /**
+     * Charset of snapshots, the same as of log and protocol
+     */
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    /**
+     * Encoded selections for prefixes up to this length are built in advance
+     */
+    private static final int WARM_UP_DEPTH = 2;
+
+    private final File dictionaryFile;
+    private final boolean substringIndex;
+    /**
+     * Null if the dictionary is read-only
+     */
+    private final SelectionLog log;
+    private volatile Dictionary dictionary;
+    /**
+     * Number of the last segment folded into current dictionary. Guarded by this
+     */
+    private long snapshotSegment;
+    private ScheduledFuture<?> compaction;
+    private boolean closed = false;
+
+    public LearningDictionary(File dictionaryFile) throws IOException {
+        this(dictionaryFile, false);
+    }
+
+    /**
+     * @param substringIndex if true, substring index is built for every version of the
+     *                       dictionary before it is used, see {@link Dictionary#buildSubstringIndex()}
+     */
+    public LearningDictionary(File dictionaryFile, boolean substringIndex) throws IOException {
+        this.dictionaryFile = dictionaryFile;
+        this.substringIndex = substringIndex;
+        snapshotSegment = 0;
+        for (long snapshot : NumberedFiles.list(dictionaryFile, SNAPSHOT_SUFFIX)) {
+            snapshotSegment = Math.max(snapshotSegment, snapshot);
+        }
+        Map<String, Integer> selections = readSnapshot();
+
+        // replaying segments which were not folded before crash
+        List<Long> segments = SelectionLog.listSegments(dictionaryFile);
+        long lastSegment = snapshotSegment;
+        boolean hasSelections = false;
+        for (long segment : segments) {
+            lastSegment = Math.max(lastSegment, segment);
+            if (segment > snapshotSegment) {
+                hasSelections |= addSegment(segment, selections);
+            }
+        }
+        dictionary = Dictionary.initDictionary(dictionaryFile);
+        if (!selections.isEmpty()) {
+            dictionary = dictionary.withSelections(selections);
+        }
+        if (!Files.isWritable(dictionaryFile.getAbsoluteFile().getParentFile().toPath())) {
+            System.out.println("Directory of dictionary \'" + dictionaryFile
+                    + "\' is not writable, selections are not learned");
+            log = null;
+        } else {
+            if (hasSelections) {
+                System.out.println("Replaying selection log segments " + (snapshotSegment + 1)
+                        + ".." + lastSegment + "...");
+                writeSnapshot(selections, lastSegment);
+                snapshotSegment = lastSegment;
+            } else {
+                // nothing was selected since the snapshot, e.g. segment of previous run is empty
+                for (long segment : segments) {
+                    if (segment > snapshotSegment) {
+                        deleteFile(SelectionLog.segmentFile(dictionaryFile, segment));
+                    }
+                }
+            }
+            deleteObsoleteFiles();
+            deleteTemporaryFiles();
+            log = new SelectionLog(dictionaryFile, lastSegment + 1);
+        }
+        prepare(dictionary);
+    }
+
+    /**
+     * @return true if the file is created by learning dictionary (log segment, snapshot
+     * or temporary file), i.e. it is not a source dictionary
+     */
+    public static boolean isServiceFile(File file) {
+        return file.getName().matches(".*(" + Pattern.quote(SNAPSHOT_SUFFIX) + "|"
+                + Pattern.quote(SelectionLog.SEGMENT_SUFFIX) + ")\\d+("
+                + Pattern.quote(TEMPORARY_SUFFIX) + ")?");
+    }
+
+    public Dictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return false if the dictionary is read-only, so selections are not accepted
+     */
+    public boolean isLearning() {
+        return log != null;
+    }
+
+    /**
+     * Registers selection of the word. Returns when selection is stored durably;
+     * it affects prompts after next compaction
+     *
+     * @throws IOException if the dictionary is read-only
+     */
+    public void select(String word) throws IOException {
+        if (log == null) {
+            throw new IOException("Dictionary \'" + dictionaryFile + "\' is read-only");
+        }
+        log.append(word.toLowerCase());
+    }
+
+    /**
+     * Folds all selections logged so far into new dictionary snapshot and starts using it
+     */
+    public synchronized void compact() throws IOException {
+        if (closed || log == null || log.isSegmentEmpty()) {
+            return;
+        }
+        fold(log.rotate());
+        deleteObsoleteFiles();
+    }
+
+    /**
+     * Schedules compaction with specified period
+     *
+     * @param compactionService executor which may be shared by several dictionaries
+     * @param compactionListener is called after every compaction, may be null
+     */
+    public synchronized void startCompaction(ScheduledExecutorService compactionService,
+                                             long periodSeconds,
+                                             final Runnable compactionListener) {
+        if (compaction != null || log == null) {
+            return;
+        }
+        compaction = compactionService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    // segments stay on disk, so they will be folded next time
+                    e.printStackTrace();
+                }
+                if (compactionListener != null) {
+                    compactionListener.run();
+                }
+            }
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Folds segments after current snapshot up to lastSegment inclusive, writes new snapshot
+     * and replaces the dictionary
+     */
+    private synchronized void fold(long lastSegment) throws IOException {
+        Map<String, Integer> newSelections = new HashMap<>();
+        for (long segment = snapshotSegment + 1; segment <= lastSegment; ++segment) {
+            addSegment(segment, newSelections);
+        }
+        Dictionary newDictionary = dictionary.withSelections(newSelections);
+        prepare(newDictionary);
+        Map<String, Integer> selections = readSnapshot();
+        for (Map.Entry<String, Integer> selection : newSelections.entrySet()) {
+            addSelection(selections, selection.getKey(), selection.getValue());
+        }
+        writeSnapshot(selections, lastSegment);
+        dictionary = newDictionary;
+        snapshotSegment = lastSegment;
+    }
+
+    /**
+     * Adds words of the segment to selection counts
+     *
+     * @return true if the segment contains any selection
+     */
+    private boolean addSegment(long segment, Map<String, Integer> selections) throws IOException {
+        File segmentFile = SelectionLog.segmentFile(dictionaryFile, segment);
+        if (!segmentFile.exists()) {
+            return false;
+        }
+        List<String> words = SelectionLog.readSegment(segmentFile);
+        for (String word : words) {
+            addSelection(selections, word, 1);
+        }
+        return !words.isEmpty();
+    }
+
+    private static void addSelection(Map<String, Integer> selections, String word, int count) {
+        Integer oldCount = selections.get(word);
+        long newCount = (long) count + (oldCount == null ? 0 : oldCount);
+        selections.put(word, (int) Math.min(newCount, Integer.MAX_VALUE));
+    }
+
+    /**
+     * @return selection counts of current snapshot, empty if there is no snapshot yet
+     */
+    private Map<String, Integer> readSnapshot() throws IOException {
+        Map<String, Integer> selections = new HashMap<>();
+        if (snapshotSegment == 0) {
+            return selections;
+        }
+        File snapshotFile = NumberedFiles.file(dictionaryFile, SNAPSHOT_SUFFIX, snapshotSegment);
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(snapshotFile), CHARSET))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] wordAndCount = line.split(" ");
+                try {
+                    if (wordAndCount.length != 2) {
+                        throw new NumberFormatException();
+                    }
+                    addSelection(selections, wordAndCount[0], Integer.parseInt(wordAndCount[1]));
+                } catch (NumberFormatException e) {
+                    throw new IOException("Cannot resolve selection count in \'" + snapshotFile
+                            + "\': " + line);
+                }
+            }
+        }
+        return selections;
+    }
+
+    /**
+     * Prepares the dictionary for serving, so it is not done by first requests
+     */
+    private void prepare(Dictionary newDictionary) {
+        newDictionary.warmUp(WARM_UP_DEPTH);
+        if (substringIndex) {
+            newDictionary.buildSubstringIndex();
+        }
+    }
+
+    /**
+     * Writes selection counts as lines '&lt;word&gt; &lt;count&gt;'
+     */
+    private void writeSnapshot(Map<String, Integer> selections, long segment) throws IOException {
+        File snapshotFile = NumberedFiles.file(dictionaryFile, SNAPSHOT_SUFFIX, segment);
+        File temporaryFile = new File(snapshotFile.getPath() + TEMPORARY_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+            for (Map.Entry<String, Integer> selection : selections.entrySet()) {
+                writer.write(selection.getKey());
+                writer.write(' ');
+                writer.write(Integer.toString(selection.getValue()));
+                writer.write('\n');
+            }
+            writer.flush();
+            out.getFD().sync();
+        }
+        // snapshot becomes visible only when it is complete
+        Files.move(temporaryFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Deletes segments and snapshots which are covered by current snapshot
+     */
+    private synchronized void deleteObsoleteFiles() {
+        for (long segment : SelectionLog.listSegments(dictionaryFile)) {
+            if (segment <= snapshotSegment) {
+                deleteFile(SelectionLog.segmentFile(dictionaryFile, segment));
+            }
+        }
+        for (long snapshot : NumberedFiles.list(dictionaryFile, SNAPSHOT_SUFFIX)) {
+            if (snapshot < snapshotSegment) {
+                deleteFile(NumberedFiles.file(dictionaryFile, SNAPSHOT_SUFFIX, snapshot));
+            }
+        }
+    }
+
+    /**
+     * Deletes snapshots which were not completed because of crash
+     */
+    private void deleteTemporaryFiles() {
+        String prefix = dictionaryFile.getName() + SNAPSHOT_SUFFIX;
+        File[] files = dictionaryFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(prefix) && name.endsWith(TEMPORARY_SUFFIX)) {
+                deleteFile(file);
+            }
+        }
+    }
+
+    private void deleteFile(File file) {
+        if (!file.delete()) {
+            System.err.println("Cannot delete obsolete file \'" + file + "\'");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (compaction != null) {
+                compaction.cancel(false);
+            }
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+}
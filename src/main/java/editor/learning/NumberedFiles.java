@@ -0,0 +1,45 @@
+package editor.learning;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Helper for files named as '&lt;base file name&gt;&lt;suffix&gt;&lt;number&gt;',
+ * which are placed next to base file
+ *
+ * @author Vsevolod Kosulnikov
+ */
+class NumberedFiles {
+    private NumberedFiles() {
+    }
+
+    static File file(File baseFile, String suffix, long number) {
+        return new File(baseFile.getAbsoluteFile().getParentFile(),
+                baseFile.getName() + suffix + number);
+    }
+
+    /**
+     * @return numbers of existing files, unsorted
+     */
+    static List<Long> list(File baseFile, String suffix) {
+        String prefix = baseFile.getName() + suffix;
+        List<Long> numbers = new ArrayList<>();
+        File[] files = baseFile.getAbsoluteFile().getParentFile().listFiles();
+        if (files == null) {
+            return numbers;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (!name.startsWith(prefix)) {
+                continue;
+            }
+            try {
+                numbers.add(Long.parseLong(name.substring(prefix.length())));
+            } catch (NumberFormatException e) {
+                // not ours, e.g. temporary file
+            }
+        }
+        return numbers;
+    }
+}
@@ -0,0 +1,241 @@
+package editor.learning;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Write-ahead log of selected words. Every record is a word terminated by '\n'.
+ * Log is split into numbered segments, see {@link #segmentFile(File, long)}.
+ * <p>
+ * Records are written by single background thread with group commit: all records appended while
+ * previous batch was synced are written and synced together, so one fsync is shared by all
+ * concurrent writers
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class SelectionLog implements Closeable {
+    static final String SEGMENT_SUFFIX = ".wal.";
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File baseFile;
+    private final BlockingQueue<String> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    /**
+     * Guards channel and segment, so segment cannot be rotated in the middle of the batch
+     */
+    private final Object channelLock = new Object();
+    private FileChannel channel;
+    private long segment;
+    private long segmentLength;
+
+    /**
+     * Sequence numbers of appended and synced records. Guarded by this
+     */
+    private long appendedCount = 0;
+    private long syncedCount = 0;
+    private IOException failure;
+    private boolean closed = false;
+
+    /**
+     * @param baseFile file which name is used as prefix for segment files
+     * @param segment number of segment to start with; it must not exist yet
+     */
+    public SelectionLog(File baseFile, long segment) throws IOException {
+        this.baseFile = baseFile;
+        this.segment = segment;
+        channel = openSegment(segment);
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBatches();
+            }
+        });
+        writerThread.setName("Selection-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Appends word to the log. Returns when the word is synced to disk
+     */
+    public void append(String word) throws IOException {
+        long sequence;
+        synchronized (this) {
+            checkState();
+            queue.add(word);
+            sequence = ++appendedCount;
+        }
+        boolean interrupted = false;
+        try {
+            synchronized (this) {
+                while (syncedCount < sequence) {
+                    if (failure != null) {
+                        throw new IOException("Selection log is broken", failure);
+                    }
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (failure != null) {
+            throw new IOException("Selection log is broken", failure);
+        }
+        if (closed) {
+            throw new IOException("Selection log is closed");
+        }
+    }
+
+    /**
+     * Closes current segment and starts the next one. Records of closed segment are synced already
+     *
+     * @return number of closed segment
+     */
+    public long rotate() throws IOException {
+        synchronized (channelLock) {
+            long closedSegment = segment;
+            FileChannel newChannel = openSegment(closedSegment + 1);
+            channel.close();
+            channel = newChannel;
+            segment = closedSegment + 1;
+            segmentLength = 0;
+            return closedSegment;
+        }
+    }
+
+    /**
+     * @return true if nothing was written to current segment yet
+     */
+    public boolean isSegmentEmpty() {
+        synchronized (channelLock) {
+            return segmentLength == 0;
+        }
+    }
+
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(segmentFile(baseFile, segment).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+    }
+
+    private void writeBatches() {
+        List<String> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch);
+            IOException batchFailure = null;
+            try {
+                writeBatch(batch);
+            } catch (IOException e) {
+                batchFailure = e;
+            }
+            synchronized (this) {
+                if (batchFailure != null) {
+                    failure = batchFailure;
+                } else {
+                    syncedCount += batch.size();
+                }
+                notifyAll();
+            }
+            if (batchFailure != null) {
+                batchFailure.printStackTrace();
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(List<String> batch) throws IOException {
+        StringBuilder records = new StringBuilder();
+        for (String word : batch) {
+            records.append(word).append('\n');
+        }
+        ByteBuffer buffer = CHARSET.encode(records.toString());
+        synchronized (channelLock) {
+            segmentLength += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        boolean interrupted = false;
+        // all appended records must be synced before writer is stopped
+        synchronized (this) {
+            closed = true;
+            while (syncedCount < appendedCount && failure == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    break;
+                }
+            }
+        }
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        synchronized (channelLock) {
+            channel.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static File segmentFile(File baseFile, long segment) {
+        return NumberedFiles.file(baseFile, SEGMENT_SUFFIX, segment);
+    }
+
+    /**
+     * @return numbers of existing segments, unsorted
+     */
+    public static List<Long> listSegments(File baseFile) {
+        return NumberedFiles.list(baseFile, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Reads words of the segment. Last record is ignored if it is not terminated, because
+     * it was not synced completely
+     */
+    public static List<String> readSegment(File segmentFile) throws IOException {
+        byte[] content = Files.readAllBytes(segmentFile.toPath());
+        List<String> words = new ArrayList<>();
+        int recordStart = 0;
+        for (int position = 0; position < content.length; ++position) {
+            if (content[position] == '\n') {
+                if (position > recordStart) {
+                    words.add(new String(content, recordStart, position - recordStart, CHARSET));
+                }
+                recordStart = position + 1;
+            }
+        }
+        return words;
+    }
+}
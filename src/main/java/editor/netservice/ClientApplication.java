@@ -15,8 +15,23 @@ public class ClientApplication extends Application {
     private final Socket socket;
     private final PromptProtocol protocol;
     public ClientApplication(String host, int port) throws IOException {
+        this(host, port, null);
+    }
+
+    /**
+     * @param dictionaryName dictionary hosted by the server; if null, default one is used
+     */
+    public ClientApplication(String host, int port, String dictionaryName) throws IOException {
         socket = new Socket(host, port);
         this.protocol = new PromptProtocol(socket.getInputStream(), socket.getOutputStream());
+        if (dictionaryName != null) {
+            try {
+                protocol.use(dictionaryName);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
     }
 
     @Override
@@ -0,0 +1,291 @@
+package editor.netservice;
+
+import editor.Dictionary;
+import editor.learning.LearningDictionary;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Named dictionaries hosted by the server. Dictionaries are loaded on first use; when estimated
+ * size of loaded dictionaries exceeds memory budget, least recently used ones are unloaded
+ * (their selections are logged already, so they are replayed on next load)
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class DictionaryRegistry implements Closeable {
+    /**
+     * Period of memory budget check, in seconds. Loaded dictionaries grow while encoded
+     * selections are cached, so budget is checked not only when dictionary is loaded
+     */
+    private static final int MEMORY_CHECK_PERIOD = 10;
+
+    private final Map<String, HostedDictionary> dictionaries = new TreeMap<>();
+    private final String defaultName;
+    private final long memoryBudget;
+    private final ScheduledExecutorService compactionService;
+    private final int compactionPeriod;
+    private final boolean substringIndex;
+    private final ScheduledFuture<?> memoryCheck;
+    private final Runnable memoryChecker = new Runnable() {
+        @Override
+        public void run() {
+            unloadIfNeeded(null);
+        }
+    };
+
+    /**
+     * @param dictionaryPath dictionary file or directory of dictionary files;
+     *                       name of dictionary is its file name
+     * @param defaultName name of default dictionary; may be null if path is a file or directory
+     *                    contains the only dictionary
+     * @param substringIndex if true, substring index is built for loaded dictionaries
+     */
+    public DictionaryRegistry(File dictionaryPath, String defaultName, long memoryBudget,
+                              ScheduledExecutorService compactionService, int compactionPeriod,
+                              boolean substringIndex)
+            throws IOException {
+        this.memoryBudget = memoryBudget;
+        this.substringIndex = substringIndex;
+        this.compactionService = compactionService;
+        this.compactionPeriod = compactionPeriod;
+        File[] files;
+        if (dictionaryPath.isDirectory()) {
+            files = dictionaryPath.listFiles();
+        } else {
+            files = new File[]{dictionaryPath};
+        }
+        if (files == null) {
+            throw new IOException("Cannot list dictionaries in \'" + dictionaryPath + "\'");
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && !file.isHidden() && !LearningDictionary.isServiceFile(file)) {
+                dictionaries.put(file.getName(), new HostedDictionary(file));
+            }
+        }
+        if (dictionaries.isEmpty()) {
+            throw new IOException("No dictionaries found in \'" + dictionaryPath + "\'");
+        }
+        if (defaultName == null && dictionaries.size() == 1) {
+            defaultName = dictionaries.keySet().iterator().next();
+        }
+        if (defaultName != null && !dictionaries.containsKey(defaultName)) {
+            throw new IOException("Default dictionary \'" + defaultName + "\' is not found");
+        }
+        this.defaultName = defaultName;
+        memoryCheck = compactionService.scheduleWithFixedDelay(memoryChecker,
+                MEMORY_CHECK_PERIOD, MEMORY_CHECK_PERIOD, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return name of dictionary for connections which did not select one, or null
+     */
+    public String getDefaultName() {
+        return defaultName;
+    }
+
+    public boolean contains(String name) {
+        return dictionaries.containsKey(name);
+    }
+
+    /**
+     * @return true if the dictionary is known and loaded, so it is used without delay
+     */
+    public boolean isLoaded(String name) {
+        HostedDictionary hosted = name == null ? null : dictionaries.get(name);
+        return hosted != null && hosted.dictionary != null;
+    }
+
+    public Dictionary getDictionary(String name) throws IOException {
+        HostedDictionary hosted = find(name);
+        hosted.requests.incrementAndGet();
+        return load(hosted).getDictionary();
+    }
+
+    public void select(String name, String word) throws IOException {
+        HostedDictionary hosted = find(name);
+        while (true) {
+            LearningDictionary dictionary = load(hosted);
+            hosted.lock.readLock().lock();
+            try {
+                // else it has been unloaded meanwhile and must be loaded again
+                if (hosted.dictionary == dictionary) {
+                    if (!dictionary.isLearning()) {
+                        throw new BadRequestException("Dictionary is read-only: " + name);
+                    }
+                    dictionary.select(word);
+                    hosted.selections.incrementAndGet();
+                    return;
+                }
+            } finally {
+                hosted.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Loads the dictionary in advance
+     */
+    public void preload(String name) throws IOException {
+        load(find(name));
+    }
+
+    private HostedDictionary find(String name) throws BadRequestException {
+        HostedDictionary hosted = name == null ? null : dictionaries.get(name);
+        if (hosted == null) {
+            throw new BadRequestException("Unknown dictionary: " + name);
+        }
+        return hosted;
+    }
+
+    private LearningDictionary load(HostedDictionary hosted) throws IOException {
+        hosted.lastAccessTime = System.nanoTime();
+        LearningDictionary dictionary = hosted.dictionary;
+        if (dictionary != null) {
+            return dictionary;
+        }
+        hosted.lock.writeLock().lock();
+        try {
+            dictionary = hosted.dictionary;
+            if (dictionary == null) {
+                long loadTime = -System.nanoTime();
+                System.out.println("Loading dictionary \'" + hosted.name + "\'...");
+                dictionary = new LearningDictionary(hosted.file, substringIndex);
+                // compaction builds new version of dictionary, which may be larger
+                dictionary.startCompaction(compactionService, compactionPeriod, memoryChecker);
+                hosted.loadTime = TimeUnit.NANOSECONDS.toMillis(loadTime + System.nanoTime());
+                hosted.loads.incrementAndGet();
+                hosted.dictionary = dictionary;
+            }
+        } finally {
+            hosted.lock.writeLock().unlock();
+        }
+        unloadIfNeeded(hosted);
+        return dictionary;
+    }
+
+    /**
+     * Unloads least recently used dictionaries until loaded ones fit in memory budget
+     *
+     * @param requested dictionary which is not unloaded; if null, the most recently used
+     *                  dictionary is not unloaded
+     */
+    private synchronized void unloadIfNeeded(HostedDictionary requested) {
+        long totalSize = 0;
+        HostedDictionary mostRecentlyUsed = null;
+        for (HostedDictionary hosted : dictionaries.values()) {
+            totalSize += hosted.getEstimatedSize();
+            if (hosted.dictionary != null && (mostRecentlyUsed == null
+                    || hosted.lastAccessTime - mostRecentlyUsed.lastAccessTime > 0)) {
+                mostRecentlyUsed = hosted;
+            }
+        }
+        if (requested == null) {
+            requested = mostRecentlyUsed;
+        }
+        while (totalSize > memoryBudget) {
+            HostedDictionary leastRecentlyUsed = null;
+            for (HostedDictionary hosted : dictionaries.values()) {
+                if (hosted != requested && hosted.dictionary != null && (leastRecentlyUsed == null
+                        || hosted.lastAccessTime - leastRecentlyUsed.lastAccessTime < 0)) {
+                    leastRecentlyUsed = hosted;
+                }
+            }
+            if (leastRecentlyUsed == null) {
+                return;
+            }
+            totalSize -= leastRecentlyUsed.getEstimatedSize();
+            unload(leastRecentlyUsed);
+        }
+    }
+
+    private void unload(HostedDictionary hosted) {
+        hosted.lock.writeLock().lock();
+        try {
+            LearningDictionary dictionary = hosted.dictionary;
+            if (dictionary == null) {
+                return;
+            }
+            System.out.println("Unloading dictionary \'" + hosted.name + "\'...");
+            hosted.dictionary = null;
+            hosted.unloads.incrementAndGet();
+            dictionary.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            hosted.lock.writeLock().unlock();
+        }
+    }
+
+    public String getStatistics() {
+        StringBuilder statistics = new StringBuilder();
+        for (HostedDictionary hosted : dictionaries.values()) {
+            if (statistics.length() > 0) {
+                statistics.append('\n');
+            }
+            statistics.append(hosted);
+        }
+        return statistics.toString();
+    }
+
+    @Override
+    public synchronized void close() {
+        memoryCheck.cancel(false);
+        for (HostedDictionary hosted : dictionaries.values()) {
+            unload(hosted);
+        }
+    }
+
+    private static class HostedDictionary {
+        private final String name;
+        private final File file;
+        /**
+         * Write lock is held while dictionary is loaded or unloaded, read lock - while selection
+         * is logged, so log is not closed in the middle of it
+         */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+        private volatile LearningDictionary dictionary;
+        private volatile long lastAccessTime;
+
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong selections = new AtomicLong();
+        private final AtomicLong loads = new AtomicLong();
+        private final AtomicLong unloads = new AtomicLong();
+        /**
+         * Duration of the last loading, in milliseconds
+         */
+        private volatile long loadTime;
+
+        private HostedDictionary(File file) {
+            this.name = file.getName();
+            this.file = file;
+        }
+
+        private long getEstimatedSize() {
+            LearningDictionary loaded = dictionary;
+            return loaded == null ? 0 : loaded.getDictionary().getEstimatedSize();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + (dictionary == null ? "not loaded" :
+                    "loaded, ~" + getEstimatedSize() / 1024 + "K") +
+                    "; requests " + requests +
+                    ", selections " + selections +
+                    ", loads " + loads +
+                    ", unloads " + unloads +
+                    ", last load time " + loadTime + "ms";
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package editor.netservice;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of served and shed load
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class LoadStatistics {
+    public final AtomicLong acceptedConnections = new AtomicLong();
+    /**
+     * Connections rejected because of maxConnections limit
+     */
+    public final AtomicLong rejectedConnections = new AtomicLong();
+    /**
+     * Connections closed because of read or write timeout
+     */
+    public final AtomicLong timedOutConnections = new AtomicLong();
+    public final AtomicLong servedRequests = new AtomicLong();
+    /**
+     * Requests rejected because of maxInFlightRequests limit
+     */
+    public final AtomicLong shedRequests = new AtomicLong();
+    /**
+     * Requests rejected because of requestDeadline
+     */
+    public final AtomicLong expiredRequests = new AtomicLong();
+
+    @Override
+    public String toString() {
+        return "connections: accepted " + acceptedConnections +
+                ", rejected " + rejectedConnections +
+                ", timed out " + timedOutConnections +
+                "; requests: served " + servedRequests +
+                ", shed " + shedRequests +
+                ", expired " + expiredRequests;
+    }
+}
@@ -3,6 +3,9 @@ package editor.netservice;
 import editor.Dictionary;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
@@ -14,43 +17,256 @@ import java.util.List;
  */
 public class PromptProtocol {
     private static final String BAD_REQUEST = "%%bad_request%%";
+    private static final String SERVER_ERROR = "%%server_error%%";
+    private static final String BUSY = "%%busy%%";
+    private static final String ACCEPTED = "%%accepted%%";
+    private static final String GET_REQUEST = "get ";
+    private static final String SELECTED_REQUEST = "selected ";
+    private static final String USE_REQUEST = "use ";
+    private static final String FIND_REQUEST = "find ";
     private static final String CHARSET_NAME = "UTF-8";
 
+    /**
+     * Server responses are encoded once and shared by all connections
+     */
+    private static final ByteBuffer BAD_REQUEST_RESPONSE = encodeResponse(BAD_REQUEST);
+    private static final ByteBuffer SERVER_ERROR_RESPONSE = encodeResponse(SERVER_ERROR);
+    private static final ByteBuffer BUSY_RESPONSE = encodeResponse(BUSY);
+    private static final ByteBuffer ACCEPTED_RESPONSE = encodeResponse(ACCEPTED);
+
     private final BufferedReader in;
+    /**
+     * Client side writes requests as text...
+     */
     private final PrintWriter out;
-    private final Dictionary dictionary;
+    /**
+     * ...and server side writes responses as already encoded bytes. Responses are buffered
+     * until {@link #flush()}, so several pipelined responses are sent by one socket write.
+     * Only the writer of the side is created, the other one is null
+     */
+    private final OutputStream responseOut;
+    private final WritableByteChannel responseChannel;
+    private final DictionaryRegistry dictionaries;
+    private final boolean cacheResponses;
+    /**
+     * Dictionary selected for the connection by 'use' request
+     */
+    private String dictionaryName;
+    /**
+     * Time spent for loading dictionaries since {@link #takeLoadTime()}, in nanoseconds
+     */
+    private long loadTime = 0;
+
+    /**
+     * Creates client side of the protocol
+     */
     public PromptProtocol(InputStream in, OutputStream out) {
-        this(in, out, null);
-    }
-    public PromptProtocol(InputStream in, OutputStream out, Dictionary dictionary) {
         this.in = new BufferedReader(new InputStreamReader(in, Charset.forName(CHARSET_NAME)));
         this.out = new PrintWriter(new OutputStreamWriter(out, Charset.forName(CHARSET_NAME)), true);
-        this.dictionary = dictionary;
+        this.responseOut = null;
+        this.responseChannel = null;
+        this.dictionaries = null;
+        this.cacheResponses = false;
+    }
+
+    /**
+     * Creates server side of the protocol
+     *
+     * @param dictionaries may be null if the server only rejects the connection
+     * @param cacheResponses if true, encoded responses cached by dictionary are used,
+     *                       otherwise every response is encoded anew
+     */
+    public PromptProtocol(InputStream in, OutputStream out, DictionaryRegistry dictionaries,
+                          boolean cacheResponses) {
+        this.in = new BufferedReader(new InputStreamReader(in, Charset.forName(CHARSET_NAME)));
+        this.out = null;
+        this.responseOut = new BufferedOutputStream(out);
+        this.responseChannel = Channels.newChannel(responseOut);
+        this.dictionaries = dictionaries;
+        this.cacheResponses = cacheResponses;
+        if (dictionaries != null) {
+            dictionaryName = dictionaries.getDefaultName();
+        }
+    }
+
+    /**
+     * @return next request line or null if the connection is closed by client
+     */
+    public String readRequest() throws IOException {
+        return in.readLine();
+    }
+
+    /**
+     * Responds that the request is rejected because of server overload
+     */
+    public void sendBusy() throws IOException {
+        respond(BUSY_RESPONSE);
+    }
+
+    /**
+     * Processes the request and writes the response. Response is not sent until {@link #flush()},
+     * except that requests which may block (selection, dictionary loading) send previous ones.
+     * Requests 'get', 'find' and 'selected' may be followed by dictionary name, otherwise
+     * dictionary of the connection is used
+     */
+    public void processRequest(String request) throws IOException {
+        if (request.startsWith(GET_REQUEST)) {
+            processGet(request.substring(GET_REQUEST.length()));
+        } else if (request.startsWith(SELECTED_REQUEST)) {
+            processSelected(request.substring(SELECTED_REQUEST.length()));
+        } else if (request.startsWith(FIND_REQUEST)) {
+            processFind(request.substring(FIND_REQUEST.length()));
+        } else if (request.startsWith(USE_REQUEST)) {
+            processUse(request.substring(USE_REQUEST.length()));
+        } else {
+            respond(BAD_REQUEST_RESPONSE);
+        }
+    }
+
+    /**
+     * Sends all written responses
+     */
+    public void flush() throws IOException {
+        responseOut.flush();
+    }
+
+    /**
+     * @return time spent for loading dictionaries since previous call, in nanoseconds
+     */
+    public long takeLoadTime() {
+        long result = loadTime;
+        loadTime = 0;
+        return result;
     }
 
-    public void listen() throws IOException {
-        String inLine;
-        while ((inLine = in.readLine()) != null) {
-            processRequest(inLine);
+    private void processGet(String argument) throws IOException {
+        String prefix = getWord(argument);
+        if (!isAlphabetic(prefix)) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        }
+        Dictionary currentDictionary;
+        try {
+            currentDictionary = getDictionary(getDictionaryName(argument));
+        } catch (BadRequestException e) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            respond(SERVER_ERROR_RESPONSE);
+            return;
+        }
+        if (cacheResponses) {
+            respond(currentDictionary.getEncodedSelection(prefix));
+        } else {
+            respond(Dictionary.encodeSelection(currentDictionary.getSelection(prefix)));
         }
     }
 
-    public void processRequest(String request) {
-        if (!request.startsWith("get ")) {
-            out.println(BAD_REQUEST);
+    private void processFind(String argument) throws IOException {
+        String fragment = getWord(argument);
+        if (!isAlphabetic(fragment)) {
+            respond(BAD_REQUEST_RESPONSE);
             return;
         }
-        request = request.substring(4);
-        if (!isAlphabetic(request)) {
-            out.println(BAD_REQUEST);
+        Dictionary currentDictionary;
+        try {
+            currentDictionary = getDictionary(getDictionaryName(argument));
+        } catch (BadRequestException e) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            respond(SERVER_ERROR_RESPONSE);
             return;
         }
-        List<String> selection = dictionary.getSelection(request);
-        out.println(selection.size());
-        for (String s : selection) {
-            out.println(s);
+        // substring search is not enabled on the server
+        if (!currentDictionary.hasSubstringIndex()) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
         }
+        respond(Dictionary.encodeSelection(currentDictionary.getSubstringSelection(fragment)));
     }
+
+    private void processSelected(String argument) throws IOException {
+        String word = getWord(argument);
+        // only words which may be found by 'get' are learned
+        if (word.isEmpty() || !Dictionary.isInAlphabet(word.toLowerCase())) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        }
+        // responses to previous requests are not delayed until selection is synced
+        flush();
+        try {
+            String name = getDictionaryName(argument);
+            loadDictionary(name);
+            dictionaries.select(name, word);
+        } catch (BadRequestException e) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        } catch (IOException e) {
+            e.printStackTrace();
+            respond(SERVER_ERROR_RESPONSE);
+            return;
+        }
+        respond(ACCEPTED_RESPONSE);
+    }
+
+    private void processUse(String name) throws IOException {
+        if (!dictionaries.contains(name)) {
+            respond(BAD_REQUEST_RESPONSE);
+            return;
+        }
+        dictionaryName = name;
+        respond(ACCEPTED_RESPONSE);
+    }
+
+    private Dictionary getDictionary(String name) throws IOException {
+        loadDictionary(name);
+        return dictionaries.getDictionary(name);
+    }
+
+    /**
+     * Loads the dictionary if it is not loaded yet, measuring time of loading. Written responses
+     * are sent before, so they do not wait for loading
+     */
+    private void loadDictionary(String name) throws IOException {
+        if (!dictionaries.isLoaded(name)) {
+            flush();
+            long startTime = System.nanoTime();
+            dictionaries.preload(name);
+            loadTime += System.nanoTime() - startTime;
+        }
+    }
+
+    /**
+     * @return word of 'get', 'find' or 'selected' request argument '&lt;word&gt;[ &lt;dictionary&gt;]'
+     */
+    private String getWord(String argument) {
+        int separator = argument.indexOf(' ');
+        return separator < 0 ? argument : argument.substring(0, separator);
+    }
+
+    /**
+     * @return dictionary of 'get', 'find' or 'selected' request argument '&lt;word&gt;[ &lt;dictionary&gt;]'
+     */
+    private String getDictionaryName(String argument) {
+        int separator = argument.indexOf(' ');
+        return separator < 0 ? dictionaryName : argument.substring(separator + 1);
+    }
+
+    private void respond(ByteBuffer response) throws IOException {
+        // duplicate keeps position of shared buffer untouched
+        ByteBuffer buffer = response.duplicate();
+        while (buffer.hasRemaining()) {
+            responseChannel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer encodeResponse(String response) {
+        return Charset.forName(CHARSET_NAME).encode(response + '\n').asReadOnlyBuffer();
+    }
+
     private boolean isAlphabetic(String name) {
         char[] chars = name.toCharArray();
         for (char c : chars) {
@@ -62,7 +278,20 @@ public class PromptProtocol {
     }
 
     public List<String> request(String request) throws IOException {
-        out.println("get " + request);
+        out.println(GET_REQUEST + request);
+        return readSelection(request);
+    }
+
+    /**
+     * Requests the most frequent words containing the fragment at any position.
+     * Server must be started with substring index enabled
+     */
+    public List<String> find(String fragment) throws IOException {
+        out.println(FIND_REQUEST + fragment);
+        return readSelection(fragment);
+    }
+
+    private List<String> readSelection(String request) throws IOException {
         String response;
         List<String> responseList = new ArrayList<>();
         int length = 0;
@@ -70,8 +299,16 @@ public class PromptProtocol {
         while (stringCount<=length && (response = in.readLine()) != null) {
             if (response.equals(BAD_REQUEST)) {
                 throw new BadRequestException("Bad request: "+request);
+            } else if (response.equals(BUSY)) {
+                throw new ServerBusyException("Server is busy, request rejected: "+request);
+            } else if (response.equals(SERVER_ERROR)) {
+                throw new ServerErrorException("Server failed to process request: "+request);
             } else if (length==0) {
-                length = Integer.parseInt(response);
+                try {
+                    length = Integer.parseInt(response);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected response of server: "+response);
+                }
             } else {
                 responseList.add(response);
             }
@@ -80,11 +317,52 @@ public class PromptProtocol {
         return responseList;
     }
 
+    /**
+     * Notifies the server that user has selected the word, so it becomes more frequent.
+     * Returns when the server has stored the selection
+     */
+    public void selected(String word) throws IOException {
+        out.println(SELECTED_REQUEST + word);
+        String response = in.readLine();
+        if (response == null) {
+            throw new EOFException("Connection closed by server");
+        } else if (response.equals(BAD_REQUEST)) {
+            throw new BadRequestException("Bad request: "+word);
+        } else if (response.equals(BUSY)) {
+            throw new ServerBusyException("Server is busy, selection rejected: "+word);
+        } else if (response.equals(SERVER_ERROR)) {
+            throw new ServerErrorException("Server failed to store selection: "+word);
+        } else if (!response.equals(ACCEPTED)) {
+            throw new IOException("Selection is not accepted by server: "+response);
+        }
+    }
+
+    /**
+     * Selects dictionary for all next requests of this connection
+     */
+    public void use(String dictionaryName) throws IOException {
+        out.println(USE_REQUEST + dictionaryName);
+        String response = in.readLine();
+        if (response == null) {
+            throw new EOFException("Connection closed by server");
+        } else if (response.equals(BAD_REQUEST)) {
+            throw new BadRequestException("Unknown dictionary: "+dictionaryName);
+        } else if (response.equals(BUSY)) {
+            throw new ServerBusyException("Server is busy, dictionary is not selected: "
+                    +dictionaryName);
+        } else if (!response.equals(ACCEPTED)) {
+            throw new IOException("Dictionary is not selected by server: "+response);
+        }
+    }
+
     public void closeConnection() {
         try {
             if (out!=null) {
                 out.close();
             }
+            if (responseOut!=null) {
+                responseOut.close();
+            }
             if (in!=null) {
                 in.close();
             }
@@ -1,45 +1,74 @@
 package editor.netservice;
 
-import editor.Dictionary;
-
 import java.io.*;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.Collections;
 import java.util.Scanner;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.*;
 
 /**
  * @author Vsevolod Kosulnikov
  */
 public class ServerApplication {
-    private ExecutorService executorService = Executors.newCachedThreadPool();
-    private Dictionary dictionary;
+    private final ServerConfiguration configuration = new ServerConfiguration();
+    private final LoadStatistics statistics = new LoadStatistics();
+    /**
+     * Reader and writer threads of connections. Not bounded itself: number of connections
+     * is bounded by connectionPermits, but their threads return to the pool a bit later
+     * than permits are released
+     */
+    private final ExecutorService executorService = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService watchdogService =
+            Executors.newSingleThreadScheduledExecutor();
+    private final Semaphore connectionPermits = new Semaphore(configuration.maxConnections);
+    private final Set<ServerConnection> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<ServerConnection, Boolean>());
+    /**
+     * Compaction of all dictionaries; separated from watchdog, because it may take a while
+     */
+    private final ScheduledExecutorService compactionService =
+            Executors.newSingleThreadScheduledExecutor();
+    private final DictionaryRegistry dictionaries;
     private final int port;
 
-    public ServerApplication(File dictionaryFile, int port) throws IOException {
-        System.out.println("Reading dictionary from \'"+dictionaryFile+"\'...");
-        dictionary = Dictionary.initDictionary(dictionaryFile);
+    /**
+     * @param dictionaryPath dictionary file or directory with dictionary files
+     */
+    public ServerApplication(File dictionaryPath, int port) throws IOException {
+        System.out.println("Server configuration: " + configuration);
+        System.out.println("Looking for dictionaries in \'"+dictionaryPath+"\'...");
+        dictionaries = new DictionaryRegistry(dictionaryPath, configuration.defaultDictionary,
+                configuration.memoryBudget, compactionService, configuration.compactionPeriod,
+                configuration.substringIndex);
+        for (String name : configuration.preloadedDictionaries) {
+            dictionaries.preload(name);
+        }
         this.port = port;
     }
 
     public void run() {
         System.out.println("Initializing socket listener...");
         startListenerThread(port);
+        startWriteTimeoutWatchdog();
         System.out.println("Server started. For stop server and close all connections type " +
-                "\'exit\'");
+                "\'exit\', for load statistics type \'stats\'");
         Scanner scanner = new Scanner(System.in);
         while (true) {
             String request = scanner.nextLine();
             if (request.equalsIgnoreCase("exit")) {
                 closeAllConnections();
                 System.exit(0);
+            } else if (request.equalsIgnoreCase("stats")) {
+                System.out.println(statistics + "; active connections: " + connections.size());
+                System.out.println(dictionaries.getStatistics());
             }
         }
     }
 
     private void startListenerThread(final int port) {
-        Runnable portListener = new Thread() {
+        Thread portListener = new Thread() {
             @Override
             public void run() {
                 try (ServerSocket serverSocket = new ServerSocket(port)) {
@@ -52,34 +81,97 @@ public class ServerApplication {
                 }
             }
         };
-        executorService.submit(portListener);
+        portListener.setName("Port-listener");
+        portListener.start();
     }
 
     private void processConnection(final Socket clientSocket) {
-        Runnable connectionListener = new Thread() {
-            private PromptProtocol protocol;
-            @Override
-            public void run() {
-                try {
-                    protocol = new PromptProtocol(clientSocket.getInputStream(),
-                            clientSocket.getOutputStream(), dictionary);
-                    protocol.listen();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    protocol.closeConnection();
+        if (!connectionPermits.tryAcquire()) {
+            statistics.rejectedConnections.incrementAndGet();
+            rejectConnection(clientSocket);
+            return;
+        }
+        final ServerConnection connection;
+        try {
+            connection = new ServerConnection(clientSocket, dictionaries, configuration, statistics);
+        } catch (IOException e) {
+            e.printStackTrace();
+            connectionPermits.release();
+            closeSocket(clientSocket);
+            return;
+        }
+        connections.add(connection);
+        try {
+            connection.start(executorService, new Runnable() {
+                @Override
+                public void run() {
+                    connections.remove(connection);
+                    connectionPermits.release();
                 }
-            }
+            });
+        } catch (RejectedExecutionException e) {
+            // server is stopping
+            connections.remove(connection);
+            connectionPermits.release();
+            closeSocket(clientSocket);
+            return;
+        }
+        statistics.acceptedConnections.incrementAndGet();
+    }
 
+    /**
+     * Sends busy response to the connection over the limit and closes it
+     */
+    private void rejectConnection(Socket clientSocket) {
+        try {
+            // busy response is short, so it fits in socket send buffer of new connection and
+            // does not block the listener even if client does not read it
+            PromptProtocol protocol = new PromptProtocol(clientSocket.getInputStream(),
+                    clientSocket.getOutputStream(), null, true);
+            protocol.sendBusy();
+            protocol.flush();
+        } catch (IOException e) {
+            // client is gone already
+        } finally {
+            closeSocket(clientSocket);
+        }
+    }
+
+    private void closeSocket(Socket clientSocket) {
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Blocking socket writes cannot time out, so connections are checked periodically
+     * and the ones writing too long are closed
+     */
+    private void startWriteTimeoutWatchdog() {
+        if (configuration.writeTimeout == 0) {
+            return;
+        }
+        long period = Math.max(1, configuration.writeTimeout / 4);
+        watchdogService.scheduleWithFixedDelay(new Runnable() {
             @Override
-            public void interrupt() {
-                super.interrupt();
-                protocol.closeConnection();
+            public void run() {
+                long now = System.nanoTime();
+                for (ServerConnection connection : connections) {
+                    connection.checkWriteTimeout(now);
+                }
             }
-        };
-        executorService.submit(connectionListener);
+        }, period, period, TimeUnit.MILLISECONDS);
     }
 
     private void closeAllConnections() {
+        watchdogService.shutdownNow();
+        for (ServerConnection connection : connections) {
+            connection.close();
+        }
         executorService.shutdownNow();
+        compactionService.shutdownNow();
+        dictionaries.close();
     }
 }
@@ -0,0 +1,14 @@
+package editor.netservice;
+
+import java.io.IOException;
+
+/**
+ * Thrown when server rejects request or connection because of overload
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class ServerBusyException extends IOException {
+    public ServerBusyException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,119 @@
+package editor.netservice;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Server settings. Every setting may be overridden by system property
+ * 'editor.server.&lt;setting name&gt;', e.g. -Deditor.server.maxConnections=1000
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class ServerConfiguration {
+    private static final String PROPERTY_PREFIX = "editor.server.";
+    private static final long MEGABYTE = 1024 * 1024;
+
+    /**
+     * Maximum number of simultaneously served connections. Extra connections get busy response
+     * and are closed
+     */
+    public final int maxConnections;
+    /**
+     * Maximum number of requests read from one connection but not answered yet.
+     * Extra requests get busy response
+     */
+    public final int maxInFlightRequests;
+    /**
+     * Connection is closed if client sends nothing during this time, in milliseconds (0 - never)
+     */
+    public final int readTimeout;
+    /**
+     * Connection is closed if client does not read response during this time, in milliseconds
+     * (0 - never)
+     */
+    public final int writeTimeout;
+    /**
+     * Request which was not started in this time after arrival gets busy response, in milliseconds
+     * (0 - never)
+     */
+    public final int requestDeadline;
+    /**
+     * If true, encoded responses are cached by dictionary indices and reused for all connections
+     */
+    public final boolean cacheResponses;
+    /**
+     * Total estimated heap size of loaded dictionaries, in bytes. When it is exceeded, least
+     * recently used dictionaries are unloaded
+     */
+    public final long memoryBudget;
+    /**
+     * Dictionary used by connections which did not select one, or null
+     */
+    public final String defaultDictionary;
+    /**
+     * Dictionaries loaded on server start instead of first request
+     */
+    public final List<String> preloadedDictionaries;
+    /**
+     * If true, substring index is built for every dictionary, so 'find' requests are served
+     */
+    public final boolean substringIndex;
+    /**
+     * Period of folding selected words into the dictionary, in seconds
+     */
+    public final int compactionPeriod;
+
+    public ServerConfiguration() {
+        maxConnections = getPositive("maxConnections", 256);
+        maxInFlightRequests = getPositive("maxInFlightRequests", 64);
+        readTimeout = getNonNegative("readTimeout", 60000);
+        writeTimeout = getNonNegative("writeTimeout", 10000);
+        requestDeadline = getNonNegative("requestDeadline", 100);
+        cacheResponses = Boolean.parseBoolean(
+                System.getProperty(PROPERTY_PREFIX + "cacheResponses", "true"));
+        substringIndex = Boolean.parseBoolean(
+                System.getProperty(PROPERTY_PREFIX + "substringIndex", "false"));
+        compactionPeriod = getPositive("compactionPeriod", 60);
+        // in megabytes, by default half of the heap
+        memoryBudget = getPositive("memoryBudget",
+                (int) Math.max(1, Runtime.getRuntime().maxMemory() / 2 / MEGABYTE)) * MEGABYTE;
+        defaultDictionary = System.getProperty(PROPERTY_PREFIX + "defaultDictionary");
+        String preloaded = System.getProperty(PROPERTY_PREFIX + "preload", "").trim();
+        preloadedDictionaries = preloaded.isEmpty() ? Collections.<String>emptyList() :
+                Arrays.asList(preloaded.split("\\s*,\\s*"));
+    }
+
+    private static int getPositive(String name, int defaultValue) {
+        int value = Integer.getInteger(PROPERTY_PREFIX + name, defaultValue);
+        if (value <= 0) {
+            throw new IllegalArgumentException("Setting " + PROPERTY_PREFIX + name
+                    + " must be positive, but it is " + value);
+        }
+        return value;
+    }
+
+    private static int getNonNegative(String name, int defaultValue) {
+        int value = Integer.getInteger(PROPERTY_PREFIX + name, defaultValue);
+        if (value < 0) {
+            throw new IllegalArgumentException("Setting " + PROPERTY_PREFIX + name
+                    + " must not be negative, but it is " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "maxConnections=" + maxConnections +
+                ", maxInFlightRequests=" + maxInFlightRequests +
+                ", readTimeout=" + readTimeout +
+                ", writeTimeout=" + writeTimeout +
+                ", requestDeadline=" + requestDeadline +
+                ", cacheResponses=" + cacheResponses +
+                ", substringIndex=" + substringIndex +
+                ", compactionPeriod=" + compactionPeriod +
+                ", memoryBudget=" + memoryBudget / MEGABYTE + "M" +
+                ", defaultDictionary=" + defaultDictionary +
+                ", preload=" + preloadedDictionaries;
+    }
+}
@@ -0,0 +1,302 @@
+package editor.netservice;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side of one client connection. Requests are read by one thread and answered in the same
+ * order by another one, so the number of requests waiting for answer can be limited: requests
+ * over the limit and requests waiting longer than deadline are answered as busy
+ *
+ * @author Vsevolod Kosulnikov
+ */
+class ServerConnection {
+    private final Socket socket;
+    private final PromptProtocol protocol;
+    private final ServerConfiguration configuration;
+    private final LoadStatistics statistics;
+    private final RequestQueue queue;
+    /**
+     * Reader and writer threads; the last finished one closes the connection
+     */
+    private final AtomicInteger runningThreads = new AtomicInteger(2);
+    /**
+     * Start time of current socket write (System.nanoTime()), 0 if nothing is written now.
+     * Processing of requests (dictionary loading, selection syncing) is not counted
+     */
+    private volatile long writeStartTime = 0;
+    private volatile boolean timedOut = false;
+    private Runnable closeListener;
+
+    ServerConnection(Socket socket, DictionaryRegistry dictionaries,
+                     ServerConfiguration configuration, LoadStatistics statistics)
+            throws IOException {
+        this.socket = socket;
+        this.configuration = configuration;
+        this.statistics = statistics;
+        this.queue = new RequestQueue(configuration.maxInFlightRequests);
+        socket.setSoTimeout(configuration.readTimeout);
+        protocol = new PromptProtocol(socket.getInputStream(),
+                new TimedOutputStream(socket.getOutputStream()), dictionaries,
+                configuration.cacheResponses);
+    }
+
+    /**
+     * Starts reader and writer threads
+     *
+     * @param closeListener is called when both threads are finished and the connection is closed
+     * @throws RejectedExecutionException if no thread is started; in this case the connection
+     * is not closed and closeListener is not called
+     */
+    void start(ExecutorService executorService, Runnable closeListener) {
+        this.closeListener = closeListener;
+        executorService.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    readRequests();
+                } finally {
+                    threadFinished();
+                }
+            }
+        });
+        try {
+            executorService.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        answerRequests();
+                    } finally {
+                        threadFinished();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // reader is started already, so it will call closeListener when it is finished
+            close();
+            threadFinished();
+        }
+    }
+
+    private void readRequests() {
+        try {
+            String request;
+            while ((request = protocol.readRequest()) != null) {
+                if (!queue.add(request, System.nanoTime())) {
+                    statistics.shedRequests.incrementAndGet();
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            timedOut();
+        } catch (IOException e) {
+            // connection is broken or closed by writer, nothing to read anymore
+        } finally {
+            queue.close();
+        }
+    }
+
+    private void answerRequests() {
+        long deadline = TimeUnit.MILLISECONDS.toNanos(configuration.requestDeadline);
+        try {
+            PendingRequest pending;
+            while ((pending = queue.take()) != null) {
+                long startTime = System.nanoTime();
+                if (pending.request == null) {
+                    for (int i = 0; i < pending.shedCount; ++i) {
+                        protocol.sendBusy();
+                    }
+                } else if (deadline > 0 && startTime - pending.arrivalTime > deadline) {
+                    statistics.expiredRequests.incrementAndGet();
+                    protocol.sendBusy();
+                } else {
+                    protocol.processRequest(pending.request);
+                    statistics.servedRequests.incrementAndGet();
+                    long loadTime = protocol.takeLoadTime();
+                    if (loadTime > 0) {
+                        // waiting for dictionary loading is not counted against deadline
+                        queue.postpone(System.nanoTime(), loadTime);
+                    }
+                }
+                // responses to pipelined requests are sent together
+                if (queue.isEmpty()) {
+                    protocol.flush();
+                }
+            }
+            protocol.flush();
+        } catch (InterruptedException e) {
+            // server is stopping
+        } catch (IOException e) {
+            // connection is broken or closed because of write timeout
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Closes the connection if current response is written longer than write timeout
+     */
+    void checkWriteTimeout(long now) {
+        long startTime = writeStartTime;
+        if (configuration.writeTimeout > 0 && startTime != 0 &&
+                now - startTime > TimeUnit.MILLISECONDS.toNanos(configuration.writeTimeout)) {
+            timedOut();
+            close();
+        }
+    }
+
+    private void timedOut() {
+        if (!timedOut) {
+            timedOut = true;
+            statistics.timedOutConnections.incrementAndGet();
+        }
+    }
+
+    void close() {
+        queue.close();
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void threadFinished() {
+        if (runningThreads.decrementAndGet() == 0) {
+            close();
+            closeListener.run();
+        }
+    }
+
+    /**
+     * Socket stream which marks time of every write for {@link #checkWriteTimeout(long)}
+     */
+    private class TimedOutputStream extends FilterOutputStream {
+        private TimedOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            writeStartTime = System.nanoTime();
+            try {
+                out.write(b);
+            } finally {
+                writeStartTime = 0;
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            writeStartTime = System.nanoTime();
+            try {
+                out.write(b, off, len);
+            } finally {
+                writeStartTime = 0;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            writeStartTime = System.nanoTime();
+            try {
+                out.flush();
+            } finally {
+                writeStartTime = 0;
+            }
+        }
+    }
+
+    /**
+     * Request read from client. Requests over in-flight limit are not stored; instead the last
+     * entry counts how many busy responses must be sent, so the queue is bounded even if client
+     * does not read responses
+     */
+    private static class PendingRequest {
+        /**
+         * Request line or null for entry of rejected requests
+         */
+        private final String request;
+        /**
+         * Time the request waits since (System.nanoTime()), not counting dictionary loading
+         */
+        private long arrivalTime;
+        private int shedCount;
+
+        private PendingRequest(String request, long arrivalTime) {
+            this.request = request;
+            this.arrivalTime = arrivalTime;
+        }
+    }
+
+    private static class RequestQueue {
+        private final ArrayDeque<PendingRequest> entries = new ArrayDeque<>();
+        private final int maxAdmitted;
+        private int admitted = 0;
+        private boolean closed = false;
+
+        private RequestQueue(int maxAdmitted) {
+            this.maxAdmitted = maxAdmitted;
+        }
+
+        /**
+         * @return false if the request is rejected because of in-flight limit
+         */
+        private synchronized boolean add(String request, long arrivalTime) {
+            boolean accepted = admitted < maxAdmitted;
+            if (accepted) {
+                entries.addLast(new PendingRequest(request, arrivalTime));
+                ++admitted;
+            } else {
+                PendingRequest last = entries.peekLast();
+                if (last == null || last.request != null) {
+                    last = new PendingRequest(null, arrivalTime);
+                    entries.addLast(last);
+                }
+                ++last.shedCount;
+            }
+            notifyAll();
+            return accepted;
+        }
+
+        /**
+         * @return next entry or null if the queue is closed and empty
+         */
+        private synchronized PendingRequest take() throws InterruptedException {
+            while (entries.isEmpty() && !closed) {
+                wait();
+            }
+            PendingRequest pending = entries.pollFirst();
+            if (pending != null && pending.request != null) {
+                --admitted;
+            }
+            return pending;
+        }
+
+        /**
+         * Moves arrival time of queued requests forward by the time they waited for the
+         * dictionary loaded during [now - loadTime, now]
+         */
+        private synchronized void postpone(long now, long loadTime) {
+            for (PendingRequest pending : entries) {
+                pending.arrivalTime += Math.min(loadTime, now - pending.arrivalTime);
+            }
+        }
+
+        private synchronized boolean isEmpty() {
+            return entries.isEmpty();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
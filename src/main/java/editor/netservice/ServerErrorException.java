@@ -0,0 +1,14 @@
+package editor.netservice;
+
+import java.io.IOException;
+
+/**
+ * Thrown when server fails to process request, e.g. cannot load dictionary
+ *
+ * @author Vsevolod Kosulnikov
+ */
+public class ServerErrorException extends IOException {
+    public ServerErrorException(String message) {
+        super(message);
+    }
+}